@@ -0,0 +1,150 @@
+import java.util.*;
+
+/*
+Partition of the network into clusters for the hierarchical leader election.
+
+- Clusters are grown with a depth first search over unassigned neighbours, so every cluster is
+  connected and consecutive members are usually neighbours
+- The order of the members gives the ring of the cluster (the first follows the last)
+- Single node clusters are merged into a neighbouring cluster if there is one
+- Every cluster remembers its last elected head, and whether an election is running in it
+*/
+
+public class Clustering {
+
+	// Key is the cluster ID, list contains the nodeIDs of the cluster in ring order
+	private Map<Integer, List<Integer>> members = new LinkedHashMap<>();
+	// Key is the nodeID, value is the ID of its cluster
+	private Map<Integer, Integer> clusterOf = new HashMap<>();
+	// Key is the cluster ID, value is the last head elected in the cluster
+	private Map<Integer, Integer> heads = new HashMap<>();
+	// Clusters with an election in progress
+	private Set<Integer> pending = new HashSet<>();
+
+
+	// Splits the nodes into connected clusters of at most maxSize nodes
+	public static Clustering partition(List<Node> nodes, int maxSize) {
+		Clustering clustering = new Clustering();
+		Map<Integer, Node> byId = new HashMap<>();
+		for (int i = 0; i < nodes.size(); i++) {
+			byId.put(nodes.get(i).getNodeId(), nodes.get(i));
+		}
+
+		int nextCluster = 0;
+		for (int i = 0; i < nodes.size(); i++) {
+			int start = nodes.get(i).getNodeId();
+			if (clustering.clusterOf.containsKey(start)) {
+				continue;
+			}
+			int c = nextCluster++;
+			List<Integer> cluster = new ArrayList<>();
+			Stack<Integer> s = new Stack<>();
+			s.push(start);
+			while (!s.isEmpty() && cluster.size() < maxSize) {
+				int current = s.pop();
+				if (clustering.clusterOf.containsKey(current)) {
+					continue;
+				}
+				cluster.add(current);
+				clustering.clusterOf.put(current, c);
+				List<Integer> neighbours = byId.get(current).getNeighbours();
+				for (int j = neighbours.size() - 1; j >= 0; j--) {
+					if (!clustering.clusterOf.containsKey(neighbours.get(j))) {
+						s.push(neighbours.get(j));
+					}
+				}
+			}
+			clustering.members.put(c, cluster);
+		}
+
+		// Merge single node clusters into a neighbouring cluster
+		Iterator<Map.Entry<Integer, List<Integer>>> it = clustering.members.entrySet().iterator();
+		while (it.hasNext()) {
+			List<Integer> cluster = it.next().getValue();
+			if (cluster.size() > 1) {
+				continue;
+			}
+			int id = cluster.get(0);
+			List<Integer> neighbours = byId.get(id).getNeighbours();
+			for (int j = 0; j < neighbours.size(); j++) {
+				int target = clustering.clusterOf.get(neighbours.get(j));
+				if (clustering.members.get(target).size() > 1) {
+					clustering.members.get(target).add(id);
+					clustering.clusterOf.put(id, target);
+					it.remove();
+					break;
+				}
+			}
+		}
+		return clustering;
+	}
+
+
+	public int size() {
+		return members.size();
+	}
+
+	public Collection<Integer> getClusterIds() {
+		return members.keySet();
+	}
+
+	public List<Integer> getMembers(int cluster) {
+		return members.get(cluster);
+	}
+
+	// Returns the cluster of the node, or -1 if it isn't in any
+	public int getCluster(int nodeId) {
+		return clusterOf.getOrDefault(nodeId, -1);
+	}
+
+	// Returns the last head elected in the cluster, or -1 if there is none yet
+	public int getHead(int cluster) {
+		return heads.getOrDefault(cluster, -1);
+	}
+
+
+	// Returns the heads of the clusters in cluster order
+	public List<Integer> getHeads() {
+		List<Integer> result = new ArrayList<>();
+		for (int c : members.keySet()) {
+			result.add(heads.get(c));
+		}
+		return result;
+	}
+
+
+	// Marks that an election has been started in the cluster
+	public void electionStarted(int cluster) {
+		pending.add(cluster);
+	}
+
+
+	// Records the head elected in the cluster
+	public void setHead(int cluster, int head) {
+		heads.put(cluster, head);
+		pending.remove(cluster);
+	}
+
+
+	// Returns true if every cluster has a head and no cluster election is running
+	public boolean allHeadsKnown() {
+		return pending.isEmpty() && heads.size() == members.size();
+	}
+
+
+	// Removes a failed node, and its cluster if it was the last member
+	public void remove(int nodeId) {
+		int c = getCluster(nodeId);
+		if (c == -1) {
+			return;
+		}
+		clusterOf.remove(nodeId);
+		List<Integer> cluster = members.get(c);
+		cluster.remove(Integer.valueOf(nodeId));
+		if (cluster.isEmpty()) {
+			members.remove(c);
+			heads.remove(c);
+			pending.remove(c);
+		}
+	}
+}
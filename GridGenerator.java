@@ -0,0 +1,51 @@
+import java.io.*;
+
+/*
+Writes a graph input file of a rows x cols grid, used to compare the flat and the hierarchical election.
+
+- Node IDs are numbered row by row starting from 1
+- The ring goes through the rows in snake order (left to right, then right to left), so
+  consecutive nodes of the ring are always neighbours
+- Each line lists the neighbours below, above, right and left of the node, where they exist
+*/
+
+public class GridGenerator {
+
+	public static void main(String args[]) throws IOException {
+		if (args.length != 3) {
+			System.out.println("Usage: java GridGenerator rows cols graphFile");
+			return;
+		}
+		int rows = Integer.parseInt(args[0]);
+		int cols = Integer.parseInt(args[1]);
+		try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(args[2]), 1 << 16))) {
+			for (int r = 0; r < rows; r++) {
+				for (int i = 0; i < cols; i++) {
+					// Odd rows are walked backwards
+					int c = r % 2 == 0 ? i : cols - 1 - i;
+					StringBuilder line = new StringBuilder();
+					line.append(id(r, c, cols));
+					if (r + 1 < rows) {
+						line.append(' ').append(id(r + 1, c, cols));
+					}
+					if (r > 0) {
+						line.append(' ').append(id(r - 1, c, cols));
+					}
+					if (c + 1 < cols) {
+						line.append(' ').append(id(r, c + 1, cols));
+					}
+					if (c > 0) {
+						line.append(' ').append(id(r, c - 1, cols));
+					}
+					writer.print(line);
+					writer.print('\n');
+				}
+			}
+		}
+	}
+
+
+	private static int id(int r, int c, int cols) {
+		return r * cols + c + 1;
+	}
+}
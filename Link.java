@@ -0,0 +1,148 @@
+import java.util.*;
+
+/*
+Class to represent a directed wireless link between two neighbouring nodes.
+
+- Messages wait in a bounded queue, a full queue rejects new messages so they stay with the sender
+- The link has one slot per round, which can carry a batch of messages
+- A transmitted slot is lost with the link's loss rate and then sent again in the next round (the
+  acknowledgements are assumed to be reliable), otherwise it arrives after the link's latency
+*/
+
+public class Link {
+
+	private int from;
+	private int to;
+	private int capacity;
+	private int latency;
+	private double lossRate;
+	private int batchSize;
+
+	// Messages waiting for a slot, and the rounds they were queued in
+	private Deque<Message> queue = new ArrayDeque<>();
+	private Deque<Integer> queuedAt = new ArrayDeque<>();
+	// Messages on the air, and the rounds they arrive in
+	private Deque<Message> inFlight = new ArrayDeque<>();
+	private Deque<Integer> arrivesAt = new ArrayDeque<>();
+
+	// Statistics
+	private long sent = 0;
+	private long delivered = 0;
+	// Transmissions lost and sent again
+	private long lost = 0;
+	// Messages dropped because one end of the link failed
+	private long dropped = 0;
+	private long rejected = 0;
+	private long totalQueueDelay = 0;
+	private int maxQueueLength = 0;
+
+
+	public Link(int from, int to, int capacity, int latency, double lossRate, int batchSize) {
+		this.from = from;
+		this.to = to;
+		this.capacity = capacity;
+		this.latency = latency;
+		this.lossRate = lossRate;
+		this.batchSize = batchSize;
+	}
+
+
+	public int getFrom() {
+		return from;
+	}
+
+	public int getTo() {
+		return to;
+	}
+
+	public int getQueueLength() {
+		return queue.size();
+	}
+
+
+	// Returns true if nothing is queued or on the air
+	public boolean isIdle() {
+		return queue.isEmpty() && inFlight.isEmpty();
+	}
+
+
+	// Queues a message, returns false if the queue is full and the sender has to keep it
+	public boolean offer(Message m, int round) {
+		if (queue.size() >= capacity) {
+			rejected++;
+			return false;
+		}
+		queue.add(m);
+		queuedAt.add(round);
+		maxQueueLength = Math.max(maxQueueLength, queue.size());
+		return true;
+	}
+
+
+	// Sends the next slot of the link
+	public void transmit(int round, Random random) {
+		if (queue.isEmpty()) {
+			return;
+		}
+		// The whole slot is lost together
+		boolean slotLost = random.nextDouble() < lossRate;
+		int count = Math.min(batchSize, queue.size());
+		sent += count;
+		// A lost slot stays at the head of the queue and is sent again next round
+		if (slotLost) {
+			lost += count;
+			System.out.println(String.format("Link(%d->%d) loses a slot of %d messages, sending it again", from, to, count));
+		}
+		else {
+			for (int i = 0; i < count; i++) {
+				totalQueueDelay += round - queuedAt.poll();
+				inFlight.add(queue.poll());
+				arrivesAt.add(round + latency);
+			}
+		}
+
+		SimulationEvents.LinkTransmit event = new SimulationEvents.LinkTransmit();
+		if (event.isEnabled()) {
+			event.round = round;
+			event.from = from;
+			event.to = to;
+			event.batch = count;
+			event.queueLength = queue.size();
+			event.lost = slotLost;
+			event.commit();
+		}
+	}
+
+
+	// Drops every queued and travelling message, used when one end of the link has failed
+	public int drop() {
+		int count = queue.size() + inFlight.size();
+		dropped += count;
+		queue.clear();
+		queuedAt.clear();
+		inFlight.clear();
+		arrivesAt.clear();
+		return count;
+	}
+
+
+	// Moves the messages arriving in the given round to the list
+	public void receive(int round, List<Message> arrived) {
+		while (!arrivesAt.isEmpty() && arrivesAt.peek() <= round) {
+			arrivesAt.poll();
+			arrived.add(inFlight.poll());
+			delivered++;
+		}
+	}
+
+
+	// Returns a line describing the statistics of the link
+	public String stats(int rounds) {
+		long transmitted = sent - lost;
+		double avgDelay = transmitted == 0 ? 0 : (double) totalQueueDelay / transmitted;
+		double throughput = rounds == 0 ? 0 : (double) delivered / rounds;
+		return String.format("Link %d -> %d: sent %d, delivered %d, lost and resent %d, dropped %d, rejected %d, "
+				+ "max queue %d, avg queueing delay %.2f rounds, throughput %.3f messages/round",
+				from, to, sent, delivered, lost, dropped, rejected, maxQueueLength, avgDelay, throughput);
+	}
+}
@@ -0,0 +1,147 @@
+import java.io.*;
+import java.util.*;
+
+/*
+Class to simulate the link layer between the network and the nodes.
+
+- Every directed edge gets its own Link, created when it is first used
+- Links use the default configuration unless it has been overridden for the given edge
+- Losses come from a fixed seed random generator, so runs can be repeated
+*/
+
+public class LinkLayer {
+
+	// Configuration is {capacity, latency, loss rate, batch size}
+	private double[] defaults = {Integer.MAX_VALUE, 0, 0, 1};
+	// Key is the packed (from, to) pair of an edge with its own configuration
+	private Map<Long, double[]> overrides = new HashMap<>();
+	private Map<Long, Link> links = new LinkedHashMap<>();
+	private Random random = new Random(0);
+
+
+	private static long key(int from, int to) {
+		return (((long) from) << 32) | (to & 0xffffffffL);
+	}
+
+
+	// A link that can't queue, send or deliver a message would stall every election using it
+	private static void checkConfig(int capacity, int latency, double lossRate, int batchSize) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Link capacity must be at least 1");
+		}
+		if (latency < 0) {
+			throw new IllegalArgumentException("Link latency must not be negative");
+		}
+		// Lost slots are sent again, so a link that loses every slot would never deliver anything
+		if (lossRate < 0 || lossRate >= 1) {
+			throw new IllegalArgumentException("Loss rate must be at least 0 and below 1");
+		}
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Link batch size must be at least 1");
+		}
+	}
+
+
+	// Sets the configuration of every link without an override
+	public void setDefaults(int capacity, int latency, double lossRate, int batchSize) {
+		checkConfig(capacity, latency, lossRate, batchSize);
+		defaults = new double[] {capacity, latency, lossRate, batchSize};
+	}
+
+
+	// Sets the configuration of the link from one node to another
+	public void setLink(int from, int to, int capacity, int latency, double lossRate, int batchSize) {
+		checkConfig(capacity, latency, lossRate, batchSize);
+		overrides.put(key(from, to), new double[] {capacity, latency, lossRate, batchSize});
+	}
+
+
+	// Returns the link between two nodes, creating it if it hasn't been used yet
+	public Link getLink(int from, int to) {
+		long k = key(from, to);
+		Link link = links.get(k);
+		if (link == null) {
+			double[] c = overrides.getOrDefault(k, defaults);
+			link = new Link(from, to, (int) c[0], (int) c[1], c[2], (int) c[3]);
+			links.put(k, link);
+		}
+		return link;
+	}
+
+
+	// Lets every link send one slot and collects the messages arriving this round
+	public void transmit(int round, List<Message> arrived) {
+		for (Link link : links.values()) {
+			link.transmit(round, random);
+			link.receive(round, arrived);
+		}
+	}
+
+
+	// Drops the messages on the links from and to a failed node
+	public void dropNode(int id) {
+		for (Link link : links.values()) {
+			if (link.getFrom() == id || link.getTo() == id) {
+				int count = link.drop();
+				if (count > 0) {
+					System.out.println(String.format("Link(%d->%d) drops %d messages", link.getFrom(), link.getTo(), count));
+				}
+			}
+		}
+	}
+
+
+	// Returns true if no link has queued or travelling messages
+	public boolean isIdle() {
+		for (Link link : links.values()) {
+			if (!link.isIdle()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	// Writes the statistics of every used link
+	public void writeStats(String fileName, int rounds) throws IOException {
+		PrintWriter writer = new PrintWriter(fileName, "UTF-8");
+		for (Link link : links.values()) {
+			writer.println(link.stats(rounds));
+		}
+		writer.close();
+	}
+
+
+	// Writes the configuration to a topology file
+	public void write(DataOutputStream out) throws IOException {
+		for (int i = 0; i < defaults.length; i++) {
+			out.writeDouble(defaults[i]);
+		}
+		out.writeInt(overrides.size());
+		for (Map.Entry<Long, double[]> e : overrides.entrySet()) {
+			out.writeLong(e.getKey());
+			for (int i = 0; i < e.getValue().length; i++) {
+				out.writeDouble(e.getValue()[i]);
+			}
+		}
+	}
+
+
+	// Reads the configuration from a topology file
+	public static LinkLayer read(TopologyFile in) throws IOException {
+		LinkLayer layer = new LinkLayer();
+		for (int i = 0; i < layer.defaults.length; i++) {
+			layer.defaults[i] = in.readDouble();
+		}
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			long k = in.readLong();
+			double[] c = new double[layer.defaults.length];
+			for (int j = 0; j < c.length; j++) {
+				c[j] = in.readDouble();
+			}
+			layer.overrides.put(k, c);
+		}
+		return layer;
+	}
+}
@@ -3,6 +3,8 @@ public class Message {
 	private int recipient;
 	private String msg;
 	private boolean forward;
+	// Next node on the path of a forwarded message, -1 until the network has chosen it
+	private int hop = -1;
 	
 	public Message(int sender, int recipient, String msg, boolean forward) {
 		this.sender = sender;
@@ -26,4 +28,12 @@ public class Message {
 	public boolean isForward() {
 		return forward;
 	}
+	
+	public int getHop() {
+		return hop;
+	}
+	
+	public void setHop(int hop) {
+		this.hop = hop;
+	}
 }
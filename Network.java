@@ -1,8 +1,11 @@
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /* 
 Class to simulate the network. System design directions:
@@ -19,12 +22,39 @@ Class to simulate the network. System design directions:
 public class Network {
 
 	private static List<Node> nodes = new ArrayList<>();
+	// Key is the nodeID, used to find nodes without scanning the node list
+	private static Map<Integer, Node> nodeIndex = new HashMap<>();
 	private static int round = 0;
 	private static int period = 20;
 	// Key corresponds to round number, list contains the nodeIDs that start an election in given round
 	private static Map<Integer, List<Integer>> elections = new HashMap<>();
 	// Key corresponds to round number, value contains the nodeIDs that fail in given round
 	private static Map<Integer, Integer> fails = new HashMap<>();
+	// Key corresponds to round number, list contains {nodeID, x, y} entries for the nodes moving in given round
+	private static Map<Integer, List<double[]>> moves = new HashMap<>();
+	// Spatial index of the node positions, only used when the graph file contains coordinates
+	private static SpatialGrid grid = null;
+	private static double radioRange = 0;
+	// Link layer between the network and the nodes, only used when the events file contains LINK lines
+	private static LinkLayer linkLayer = null;
+	// Clusters of the hierarchical election, only used when the events file contains a CLUSTER line
+	private static int clusterSize = 0;
+	private static Clustering clustering = null;
+	// Cluster leaders reported by the node threads, processed by the network at the end of the round
+	private static Queue<Integer> clusterLeaders = new ConcurrentLinkedQueue<>();
+	// Leaders of the flat election and of the election among the heads, reported the same way
+	private static Queue<Integer> leaders = new ConcurrentLinkedQueue<>();
+	// Set if the heads have to elect a new global leader once every cluster has a head
+	private static boolean headElectionNeeded = false;
+	// Leader elected by the cluster heads, -1 while they are electing
+	private static int globalLeader = -1;
+	
+	// Round and number of delivered messages when the current election started, -1 if none is running
+	private static int electionStartRound = -1;
+	private static long messagesAtStart = 0;
+	private static long messagesDelivered = 0;
+	// One line per elected leader with the rounds and messages it took
+	private static List<String> electionStats = new ArrayList<>();
 	// Message buffer
 	// Messages from nodes are moved to this list and then distributed at the end of the round
 	private static List<Message> msgBuffer = new ArrayList<>();
@@ -51,27 +81,54 @@ public class Network {
 		// Create nodes with appropriate IDs and neighbours
 	    while (myReader.hasNextLine()) {
 	        String data[] = myReader.nextLine().split(" ");
+	        
+	        // RANGE header switches to coordinate mode
+	        if (data[0].equals("RANGE")) {
+	        	radioRange = Double.parseDouble(data[1]);
+	        	grid = new SpatialGrid(radioRange);
+	        	continue;
+	        }
+	        
 	        int nodeID = (Integer.parseInt(data[0]));
 	        Node n = new Node(nodeID, net);
 	        
-	        for (int j = 1; j < data.length; j++) {
-	        	n.addNeighbour(Integer.parseInt(data[j]));
+	        // In coordinate mode the line holds the position of the node
+	        if (grid != null) {
+	        	grid.insert(nodeID, Double.parseDouble(data[1]), Double.parseDouble(data[2]));
 	        }
-	        nodes.add(n);
+	        else {
+		        for (int j = 1; j < data.length; j++) {
+		        	n.addNeighbour(Integer.parseInt(data[j]));
+		        }
+	        }
+	        addNode(n);
+	    }
+	    
+	    // In coordinate mode the neighbours are the nodes within radio range
+	    if (grid != null) {
+	    	for (int i = 0; i < nodes.size(); i++) {
+	    		Node n = nodes.get(i);
+	    		List<Integer> inRange = grid.neighboursInRange(n.getNodeId(), radioRange);
+	    		for (int j = 0; j < inRange.size(); j++) {
+	    			n.addNeighbour(inRange.get(j));
+	    		}
+	    	}
 	    }
 	    
 	    // Update prev and next values and compensate for missing links
 	    for (int i = 0; i < nodes.size(); i++) {
 	    	Node n = nodes.get(i);
-	    	n.setNext(nodes.get((i+1) % nodes.size()).getNodeId());
-	    	n.addNeighbour(nodes.get((i+1) % nodes.size()).getNodeId());
-	    	if (i == 0) {
-	    		n.setPrev(nodes.get(nodes.size() - 1).getNodeId());
-	    		n.addNeighbour(nodes.get(nodes.size() - 1).getNodeId());
+	    	Node next = nodes.get((i+1) % nodes.size());
+	    	Node prev = nodes.get((i - 1 + nodes.size()) % nodes.size());
+	    	n.setNext(next.getNodeId());
+	    	n.setPrev(prev.getNodeId());
+	    	// Radio links can't be made up, so an out of range next node is reached by forwarding
+	    	if (grid != null) {
+	    		n.setNextIsDead(!n.getNeighbours().contains(next.getNodeId()));
 	    	}
 	    	else {
-	    		n.setPrev(nodes.get(i - 1).getNodeId());
-	    		n.addNeighbour(nodes.get(i - 1).getNodeId());
+	    		n.addNeighbour(next.getNodeId());
+	    		n.addNeighbour(prev.getNodeId());
 	    	}
 	    }
 	    
@@ -103,6 +160,39 @@ public class Network {
 	        	int nodeId = Integer.parseInt(data[2]);
 	        	fails.put(roundNum, nodeId);
 	        }
+	        
+	        // LINK commands: capacity, latency, loss rate, batch size and optionally the edge it applies to
+	        else if (data[0].equals("LINK")) {
+	        	// A link needs both ends, a lone from would silently become the default
+	        	if (data.length != 5 && data.length != 7) {
+	        		throw new IllegalArgumentException("LINK needs 4 values, or 6 with the link it applies to");
+	        	}
+	        	if (linkLayer == null) {
+	        		linkLayer = new LinkLayer();
+	        	}
+	        	int capacity = Integer.parseInt(data[1]);
+	        	int latency = Integer.parseInt(data[2]);
+	        	double lossRate = Double.parseDouble(data[3]);
+	        	int batchSize = Integer.parseInt(data[4]);
+	        	if (data.length == 7) {
+	        		linkLayer.setLink(Integer.parseInt(data[5]), Integer.parseInt(data[6]), capacity, latency, lossRate, batchSize);
+	        	}
+	        	else {
+	        		linkLayer.setDefaults(capacity, latency, lossRate, batchSize);
+	        	}
+	        }
+	        
+	        // CLUSTER command: maximum size of the clusters of the hierarchical election
+	        else if (data[0].equals("CLUSTER")) {
+	        	clusterSize = Integer.parseInt(data[1]);
+	        }
+	        
+	        // MOVE commands
+	        else if (data[0].equals("MOVE")) {
+	        	int roundNum = Integer.parseInt(data[1]);
+	        	double[] move = {Integer.parseInt(data[2]), Double.parseDouble(data[3]), Double.parseDouble(data[4])};
+	        	moves.computeIfAbsent(roundNum, k -> new ArrayList<>()).add(move);
+	        }
 	    }
 	    
 	    myReader.close();
@@ -110,6 +200,156 @@ public class Network {
 	
 	
 	
+	// Writes the processed graph and events to a binary topology file
+	private static void writeTopologyFile(String fileName, String graphFile, String eventsFile) throws Exception {
+		// Write to a temporary file, so a failed write never leaves a partial topology file behind
+		File tmp = new File(fileName + ".tmp");
+		try (DataOutputStream out = TopologyFile.create(tmp.getPath(), graphFile, eventsFile)) {
+			writeTopology(out);
+		}
+		catch (Exception e) {
+			tmp.delete();
+			throw e;
+		}
+		Files.move(tmp.toPath(), new File(fileName).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	
+	// Writes the body of a topology file
+	private static void writeTopology(DataOutputStream out) throws IOException {
+		// Nodes in ring order with their links and adjacency
+		out.writeDouble(radioRange);
+		out.writeInt(nodes.size());
+		for (int i = 0; i < nodes.size(); i++) {
+			Node n = nodes.get(i);
+			out.writeInt(n.getNodeId());
+			out.writeInt(n.getNext());
+			out.writeInt(n.getPrev());
+			out.writeByte(n.getNextIsDead() ? 1 : 0);
+			List<Integer> neighbours = n.getNeighbours();
+			out.writeInt(neighbours.size());
+			for (int j = 0; j < neighbours.size(); j++) {
+				out.writeInt(neighbours.get(j));
+			}
+			// Positions are only present in coordinate mode
+			if (grid != null) {
+				double[] p = grid.getPosition(n.getNodeId());
+				out.writeDouble(p[0]);
+				out.writeDouble(p[1]);
+			}
+		}
+		
+		// ELECT events
+		out.writeInt(elections.size());
+		for (Map.Entry<Integer, List<Integer>> e : elections.entrySet()) {
+			out.writeInt(e.getKey());
+			out.writeInt(e.getValue().size());
+			for (int j = 0; j < e.getValue().size(); j++) {
+				out.writeInt(e.getValue().get(j));
+			}
+		}
+		
+		// FAIL events
+		out.writeInt(fails.size());
+		for (Map.Entry<Integer, Integer> e : fails.entrySet()) {
+			out.writeInt(e.getKey());
+			out.writeInt(e.getValue());
+		}
+		
+		// Link layer configuration
+		out.writeByte(linkLayer != null ? 1 : 0);
+		if (linkLayer != null) {
+			linkLayer.write(out);
+		}
+		
+		// Hierarchical election
+		out.writeInt(clusterSize);
+		
+		// MOVE events
+		out.writeInt(moves.size());
+		for (Map.Entry<Integer, List<double[]>> e : moves.entrySet()) {
+			out.writeInt(e.getKey());
+			out.writeInt(e.getValue().size());
+			for (int j = 0; j < e.getValue().size(); j++) {
+				double[] move = e.getValue().get(j);
+				out.writeInt((int) move[0]);
+				out.writeDouble(move[1]);
+				out.writeDouble(move[2]);
+			}
+		}
+	}
+	
+	
+	// Loads the graph and events from a binary topology file, returns false if it is missing or stale
+	private boolean loadTopologyFile(String fileName, String graphFile, String eventsFile, Network net) throws Exception {
+		try (TopologyFile in = TopologyFile.open(fileName, graphFile, eventsFile)) {
+			if (in == null) {
+				return false;
+			}
+			readTopology(in, net);
+			return true;
+		}
+	}
+	
+	
+	// Reads the body of a topology file
+	private static void readTopology(TopologyFile in, Network net) throws IOException {
+		radioRange = in.readDouble();
+		if (radioRange > 0) {
+			grid = new SpatialGrid(radioRange);
+		}
+		int nodeCount = in.readInt();
+		for (int i = 0; i < nodeCount; i++) {
+			Node n = new Node(in.readInt(), net);
+			n.setNext(in.readInt());
+			n.setPrev(in.readInt());
+			n.setNextIsDead(in.readByte() == 1);
+			int degree = in.readInt();
+			for (int j = 0; j < degree; j++) {
+				n.addNeighbour(in.readInt());
+			}
+			if (grid != null) {
+				grid.insert(n.getNodeId(), in.readDouble(), in.readDouble());
+			}
+			addNode(n);
+		}
+		
+		int electionCount = in.readInt();
+		for (int i = 0; i < electionCount; i++) {
+			int roundNum = in.readInt();
+			int size = in.readInt();
+			List<Integer> ns = new ArrayList<>();
+			for (int j = 0; j < size; j++) {
+				ns.add(in.readInt());
+			}
+			elections.put(roundNum, ns);
+		}
+		
+		int failCount = in.readInt();
+		for (int i = 0; i < failCount; i++) {
+			int roundNum = in.readInt();
+			fails.put(roundNum, in.readInt());
+		}
+		
+		if (in.readByte() == 1) {
+			linkLayer = LinkLayer.read(in);
+		}
+		
+		clusterSize = in.readInt();
+		
+		int moveCount = in.readInt();
+		for (int i = 0; i < moveCount; i++) {
+			int roundNum = in.readInt();
+			int size = in.readInt();
+			List<double[]> ms = new ArrayList<>();
+			for (int j = 0; j < size; j++) {
+				ms.add(new double[] {in.readInt(), in.readDouble(), in.readDouble()});
+			}
+			moves.put(roundNum, ms);
+		}
+	}
+	
+	
 	// Logs the results of the simulation
 	private static void logger() {
 		PrintWriter writer;
@@ -125,6 +365,16 @@ public class Network {
 			}
 			writer.println("simulation completed");
 			writer.close();
+			// Rounds and messages needed by the elections
+			writer = new PrintWriter("elections.txt", "UTF-8");
+			for (int i = 0; i < electionStats.size(); i++) {
+				writer.println(electionStats.get(i));
+			}
+			writer.close();
+			// Statistics of the link layer
+			if (linkLayer != null) {
+				linkLayer.writeStats("links.txt", round);
+			}
 		} 
 		catch (Exception e) {
 			e.printStackTrace();
@@ -133,63 +383,194 @@ public class Network {
 	}
 	
 	
-	// Allows the nodes to signal election result
+	// Allows the nodes to signal election result, the network thread records it
 	public void logElection(int leader) {
+		// In the hierarchical election this is only the head of the node's cluster
+		if (clustering != null) {
+			clusterLeaders.add(leader);
+			return;
+		}
+		leaders.add(leader);
+	}
+	
+	
+	// Allows the cluster heads to signal the result of the election among them
+	public void logHeadElection(int leader) {
+		leaders.add(leader);
+	}
+	
+	
+	// Records an elected leader and what its election took
+	private static void logLeader(int leader) {
 		if (stillOnPartA) {
 			electedA.add(leader);
 		}
 		else {
 			electedB.add(leader);
 		}
+		if (electionStartRound != -1) {
+			electionStats.add(String.format("Leader Node %d: %d rounds, %d messages",
+					leader, round - electionStartRound, messagesDelivered - messagesAtStart));
+			electionStartRound = -1;
+		}
+	}
+	
+	
+	// Starts measuring an election, unless one is already being measured
+	private static void startElectionStats() {
+		if (electionStartRound == -1) {
+			electionStartRound = round;
+			messagesAtStart = messagesDelivered;
+		}
 	}
 	
 
 	
+	// Returns the current round number
+	public static int getRound() {
+		return round;
+	}
+	
+	
 	// Returns the node with the requested id
 	public static Node getNodeById(int id) {
-		for (int i = 0; i < nodes.size(); i++) {
-        	if (nodes.get(i).getNodeId() == id) {
-        		return nodes.get(i);
-        	}
-        }
-		return null;
+		return nodeIndex.get(id);
+	}
+	
+	
+	// Adds a node to the node list and the index
+	private static void addNode(Node n) {
+		nodes.add(n);
+		nodeIndex.put(n.getNodeId(), n);
+	}
+	
+	
+	// Removes a node from the node list and the index
+	private static void removeNode(Node n) {
+		nodes.remove(n);
+		nodeIndex.remove(n.getNodeId());
 	}
 	
 	
 	// Moves the outgoing messages from the nodes to the network buffer
 	public synchronized static void collectMessages() {
-		// Iterate over the nodes
-		for (int i = 0; i < nodes.size(); i++) {
-			Node n = nodes.get(i);
-			List<Integer> alreadySentTo = new ArrayList<>();
-			// Iterate over its outgoing messages
-			for (int j = 0; j < n.getOutgoingMessages().size(); j++) {
-				// Limit it to one message to each neighbour in one round
-				if (!alreadySentTo.contains(n.getOutgoingMessages().get(j).getRecipient())) {
-					// Wait for lock
-					while(n.isLocked()) {
-					    try {
-							Node.class.wait();
+		SimulationEvents.CollectMessages event = new SimulationEvents.CollectMessages();
+		event.begin();
+		int collected = 0;
+		// With the link layer the links decide what is sent this round
+		if (linkLayer != null) {
+			collected = collectMessagesOverLinks();
+		}
+		else {
+			// Iterate over the nodes
+			for (int i = 0; i < nodes.size(); i++) {
+				Node n = nodes.get(i);
+				List<Integer> alreadySentTo = new ArrayList<>();
+				// Iterate over its outgoing messages
+				for (int j = 0; j < n.getOutgoingMessages().size(); j++) {
+					// Limit it to one message to each neighbour in one round
+					if (!alreadySentTo.contains(n.getOutgoingMessages().get(j).getRecipient())) {
+						// Wait for lock
+						while(n.isLocked()) {
+						    try {
+								Thread.sleep(1);
+							}
+							catch (InterruptedException e) {
+								e.printStackTrace();
+							}
 						}
-						catch (InterruptedException e) {
-							e.printStackTrace();
+						n.lock();
+						// Check if the recipient is a neighbour of the sender except if it is a forwarding request
+						if (n.getNeighbours().contains(n.getOutgoingMessages().get(j).getRecipient()) ||
+								n.getOutgoingMessages().get(j).isForward()) {
+							// Move message from node to network buffer and log that node has sent a message to recipient this round
+							msgBuffer.add(n.getOutgoingMessages().get(j));
+							alreadySentTo.add(n.getOutgoingMessages().get(j).getRecipient());
+							n.removeOutgoingMessage(n.getOutgoingMessages().get(j));
+							collected++;
 						}
+						n.unlock();
 					}
-					n.lock();
-					// Check if the recipient is a neighbour of the sender except if it is a forwarding request
-					if (n.getNeighbours().contains(n.getOutgoingMessages().get(j).getRecipient()) ||
-							n.getOutgoingMessages().get(j).isForward()) {
-						// Move message from node to network buffer and log that node has sent a message to recipient this round
-						msgBuffer.add(n.getOutgoingMessages().get(j));
-						alreadySentTo.add(n.getOutgoingMessages().get(j).getRecipient());
-						n.removeOutgoingMessage(n.getOutgoingMessages().get(j));
+				}
+			}
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.round = round;
+			event.collected = collected;
+			for (int i = 0; i < nodes.size(); i++) {
+				event.heldBack += nodes.get(i).getOutgoingMessages().size();
+			}
+			event.commit();
+		}
+	}
+	
+	// Moves the outgoing messages from the nodes to the link queues, and the arriving messages to the network buffer
+	private static int collectMessagesOverLinks() {
+		int collected = 0;
+		for (int i = 0; i < nodes.size(); i++) {
+			Node n = nodes.get(i);
+			// Wait for lock
+			while(n.isLocked()) {
+			    try {
+					Thread.sleep(1);
+				}
+				catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+			n.lock();
+			List<Message> outgoing = n.getOutgoingMessages();
+			int j = 0;
+			while (j < outgoing.size()) {
+				Message m = outgoing.get(j);
+				int hop = -1;
+				// Forwarded messages travel over the link to the next node on the path
+				if (getNodeById(m.getRecipient()) != null) {
+					if (!m.isForward()) {
+						hop = m.getRecipient();
+					}
+					// A held back message keeps its hop unless the hop is no longer a neighbour
+					else if (m.getHop() != -1 && n.getNeighbours().contains(m.getHop())) {
+						hop = m.getHop();
 					}
-					n.unlock();
+					else {
+						hop = getNextNodeOnPath(m.getSender(), m.getRecipient());
+						m.setHop(hop);
+					}
+				}
+				// Failed or unreachable recipient is handled by deliverMessages
+				if (hop == -1) {
+					msgBuffer.add(m);
+					outgoing.remove(j);
+				}
+				// Messages stay with the sender if the recipient is not a neighbour or the link queue is full
+				else if (n.getNeighbours().contains(hop) && linkLayer.getLink(n.getNodeId(), hop).offer(m, round)) {
+					outgoing.remove(j);
+					collected++;
+				}
+				else {
+					j++;
 				}
 			}
+			n.unlock();
 		}
+		// Every link sends its next slot
+		linkLayer.transmit(round, msgBuffer);
+		return collected;
+	}
+	
+	
+	// Can't .run() original Node, so I recreate the node and .start()
+	private static Node restartNode(Node n) {
+		Node newNode = copyNode(n);
+		removeNode(n);
+		addNode(newNode);
+		newNode.start();
+		return newNode;
 	}
 	
+	
 	// Recreates a node
 	public static Node copyNode(Node n) {
 		Node newNode = new Node(n.getNodeId(), n.getNetwork());
@@ -199,6 +580,12 @@ public class Network {
         newNode.setNext(n.getNext());
         newNode.setPrev(n.getPrev());
         newNode.setNextIsDead(n.getNextIsDead());
+        newNode.setParticipant(n.isParticipant());
+        newNode.setHeadParticipant(n.isHeadParticipant());
+        newNode.setHeadNext(n.getHeadNext());
+        // Messages that haven't been processed or sent yet must not be lost
+        newNode.getOutgoingMessages().addAll(n.getOutgoingMessages());
+        newNode.getIncomingMessages().addAll(n.getIncomingMessages());
         return newNode;
 	}
 	
@@ -210,23 +597,24 @@ public class Network {
 		Iterator<Message> it = msgBuffer.iterator();
 		while (it.hasNext()) {
 		    Message m = (Message)it.next();
+		    // The recipient may have failed while the message was on its way
+		    if (getNodeById(m.getRecipient()) == null) {
+		    	System.out.println(String.format("Network drops message (%s) to failed Node(%d)", m.getMessage(), m.getRecipient()));
+		    	it.remove();
+		    	continue;
+		    }
 		    // Case where the recipient is a neighbour of the sender
 		    if (!m.isForward()) {
 		    	
 			    Node n = getNodeById(m.getRecipient());
 			    // Fire up node that is receiving the message, if it's not running already
 			    if (!n.isAlive()) {
-			    	// Can't .run() original Node, so I recreate the node and .start()
-			    	Node newNode = copyNode(n);
-			        nodes.remove(n);
-			        nodes.add(newNode);
-			        newNode.start();
-			        n = newNode;
+			    	n = restartNode(n);
 			    }
 			    // Wait for lock
 			    while (n.isLocked()) {
 			    	try {
-						Node.class.wait();
+						Thread.sleep(1);
 						System.out.println("waiting");
 					} catch (InterruptedException e) {
 						e.printStackTrace();
@@ -234,16 +622,23 @@ public class Network {
 			    }
 			    n.lock();
 			    // Deliver message to node
-			    n.receiveMsg(m.getMessage());
+			    boolean received = n.receiveMsg(m.getMessage());
 			    n.unlock();
+			    // The thread may have stopped since it was checked
+			    if (!received) {
+			    	n = restartNode(n);
+			    	n.receiveMsg(m.getMessage());
+			    }
+			    messagesDelivered++;
+			    logDelivery(m, n.getNodeId(), m.getMessage());
 			    // Remove message from the list
 			    it.remove();
 		    }
 		    
 		    // If the recipient is not a neighbour of the sender
 		    else {
-		    	// Find the next node which leads to the shortest path to recipient
-		    	int nextID = getNextNodeOnPath(m.getSender(), m.getRecipient());
+		    	// Find the next node which leads to the shortest path to recipient, unless the link layer has already chosen it
+		    	int nextID = m.getHop() != -1 ? m.getHop() : getNextNodeOnPath(m.getSender(), m.getRecipient());
 		    	
 		    	// If path exists
 		    	if (nextID != (-1)) {
@@ -251,17 +646,12 @@ public class Network {
 			    	// Send the message to the next node on the route
 			    	Node n = getNodeById(nextID);
 			    	if (!n.isAlive()) {
-				    	// Can't .run() original Node, so I recreate the node and .start()
-				    	Node newNode = copyNode(n);
-				        nodes.remove(n);
-				        nodes.add(newNode);
-				        newNode.start();
-				        n = newNode;
+			    		n = restartNode(n);
 				    }
 			    	// Wait for lock
 				    while(n.isLocked()) {
 				    	try {
-							Node.class.wait();
+							Thread.sleep(1);
 						} catch (InterruptedException e) {
 							e.printStackTrace();
 						}
@@ -280,8 +670,15 @@ public class Network {
 				    	fwdMsg = m.getMessage();
 				    }
 				    // Deliver message to node
-				    n.receiveMsg(fwdMsg);
+				    boolean received = n.receiveMsg(fwdMsg);
 				    n.unlock();
+				    // The thread may have stopped since it was checked
+				    if (!received) {
+				    	n = restartNode(n);
+				    	n.receiveMsg(fwdMsg);
+				    }
+				    messagesDelivered++;
+				    logDelivery(m, nextID, fwdMsg);
 				    System.out.println("Sending message " + fwdMsg + " to " + nextID);
 				    // Remove message from the list
 				    it.remove();
@@ -289,35 +686,72 @@ public class Network {
 		    	
 		    	// If there is no path to recipient
 		    	else {
-		    		executorService.shutdown();
-		    		System.out.println("\n\nUnreachable node detected");
-		    		logger();
+		    		stopSimulation("Unreachable node detected");
+		    		return;
 		    	}
 		    }
 		}
 	}
 	
 	
+	// Emits a flight recorder event for a delivered message
+	private static void logDelivery(Message m, int deliveredTo, String delivered) {
+		SimulationEvents.Delivery event = new SimulationEvents.Delivery();
+		if (event.isEnabled()) {
+			event.round = round;
+			event.sender = m.getSender();
+			event.recipient = m.getRecipient();
+			event.deliveredTo = deliveredTo;
+			event.messageType = delivered.split(" ")[0];
+			event.forwarded = m.isForward();
+			event.commit();
+		}
+	}
+	
+	
 	// Breadth first search from the recipient to find shortest path between 2 nodes
 	private static int getNextNodeOnPath(int from, int to) {
-		List<Integer> visited = new ArrayList<>();
+		SimulationEvents.Forward event = new SimulationEvents.Forward();
+		event.begin();
+		Set<Integer> visited = new HashSet<>();
 		visited.add(to);
 		Queue<Integer> q = new LinkedList<>();
 		q.add(to);
+		// The queue is searched one level at a time, so the distance from the recipient is just a counter
+		int hops = 0;
 		while (!q.isEmpty()) {
-			Node current = getNodeById(q.remove());
-			for (int i = 0; i < current.getNeighbours().size(); i++) {
-				if (current.getNeighbours().get(i) == from) {
-					return current.getNodeId();
-				}
-				if (!visited.contains(current.getNeighbours().get(i))) {
-					q.add(current.getNeighbours().get(i));
-					visited.add(current.getNeighbours().get(i));
+			hops++;
+			for (int level = q.size(); level > 0; level--) {
+				Node current = getNodeById(q.remove());
+				for (int i = 0; i < current.getNeighbours().size(); i++) {
+					if (current.getNeighbours().get(i) == from) {
+						return logForward(event, from, to, current.getNodeId(), hops, visited.size());
+					}
+					if (!visited.contains(current.getNeighbours().get(i))) {
+						q.add(current.getNeighbours().get(i));
+						visited.add(current.getNeighbours().get(i));
+					}
 				}
 			}
 		}
 		
-		return -1;
+		return logForward(event, from, to, -1, 0, visited.size());
+	}
+	
+	
+	// Emits the flight recorder event of a route search and returns the next hop it found
+	private static int logForward(SimulationEvents.Forward event, int from, int to, int nextHop, int hops, int visited) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.round = round;
+			event.from = from;
+			event.to = to;
+			event.nextHop = nextHop;
+			event.hops = hops;
+			event.visited = visited;
+			event.commit();
+		}
+		return nextHop;
 	}
 		
 	
@@ -326,12 +760,18 @@ public class Network {
 
 		System.out.println(String.format("Node(%d) has failed", id));
 		Node failedNode = getNodeById(id);
+		SimulationEvents.NodeFailure event = new SimulationEvents.NodeFailure();
+		event.begin();
+		event.round = round;
+		event.nodeId = id;
+		event.neighboursNotified = failedNode.getNeighbours().size();
 		
 		// Update the neighbours of the failed node
 		for (int i = 0; i < failedNode.getNeighbours().size(); i++) {
-			Node neighbour = getNodeById(failedNode.getNeighbours().get(i));
-			neighbour.removeNeighbour(id);
-			System.out.println(String.format("Node(%d) has been notified of failure", neighbour.getNodeId()));
+			notifyLinkLost(getNodeById(failedNode.getNeighbours().get(i)), id, "failure");
+		}
+		if (grid != null) {
+			grid.remove(id);
 		}
 		
 		// Update the node's previous and next neighbour
@@ -341,32 +781,254 @@ public class Network {
 		Node next = getNodeById(failedNode.getNext());
 		next.setPrev(failedNode.getPrev());
 		
+		// Messages on the links of the failed node are lost
+		if (linkLayer != null) {
+			linkLayer.dropNode(id);
+		}
+		
 		// Stop the node's execution
 		failedNode.stopExecution();
 		
 		// Remove node from nodes list
-		nodes.remove(failedNode);
+		removeNode(failedNode);
 		
 		// If the graph stayed connected we need to trigger a new election
-		if (graphIsConnected()) {
-			nodes.get(0).triggerElection();
+		event.connected = graphIsConnected();
+		event.commit();
+		if (event.connected) {
+			startElectionStats();
+			if (clustering != null) {
+				processClusterNodeFailure(id);
+			}
+			else {
+				// The election interrupted by the failure is abandoned, its messages may have been lost
+				for (int i = 0; i < nodes.size(); i++) {
+					nodes.get(i).setParticipant(false);
+				}
+				nodes.get(0).triggerElection();
+			}
 		}
 		// If the graph is disconnected stop execution
 		else {
-    		executorService.shutdown();
-    		System.out.println("\n\nGraph has become disconnected");
-    		logger();
+			stopSimulation("Graph has become disconnected");
+		}
+	}
+	
+	
+	// Only the cluster of the failed node re-elects, the heads only if the failed node was a head
+	private static void processClusterNodeFailure(int id) {
+		int c = clustering.getCluster(id);
+		boolean wasHead = clustering.getHead(c) == id;
+		clustering.remove(id);
+		if (wasHead) {
+			headElectionNeeded = true;
+		}
+		if (clustering.getMembers(c) != null) {
+			// The election interrupted by the failure is abandoned, its messages may have been lost
+			for (int i = 0; i < clustering.getMembers(c).size(); i++) {
+				getNodeById(clustering.getMembers(c).get(i)).setParticipant(false);
+			}
+			startClusterElection(c);
+		}
+		// The whole cluster is gone, the remaining heads elect the new leader
+		else if (clustering.allHeadsKnown()) {
+			startHeadElection();
 		}
 	}
 	
 	
+	// Splits the network into clusters and links the members of each cluster into a ring
+	private static void setUpClusters() {
+		clustering = Clustering.partition(nodes, clusterSize);
+		System.out.println(String.format("Network split into %d clusters", clustering.size()));
+		for (int c : clustering.getClusterIds()) {
+			List<Integer> members = clustering.getMembers(c);
+			for (int i = 0; i < members.size(); i++) {
+				Node n = getNodeById(members.get(i));
+				int next = members.get((i + 1) % members.size());
+				n.setNext(next);
+				n.setPrev(members.get((i - 1 + members.size()) % members.size()));
+				// Members that are not neighbours are reached by forwarding
+				n.setNextIsDead(!n.getNeighbours().contains(next));
+			}
+		}
+	}
+	
+	
+	// Starts the ring election inside a cluster
+	private static void startClusterElection(int c) {
+		clustering.electionStarted(c);
+		List<Integer> members = clustering.getMembers(c);
+		// A node alone in its cluster is its head
+		if (members.size() == 1) {
+			clusterLeaders.add(members.get(0));
+		}
+		else {
+			getNodeById(members.get(0)).triggerElection();
+		}
+	}
+	
+	
+	// Starts an election in every cluster, using the given nodes as initiators where possible
+	private static void startHierarchicalElection(List<Integer> initiators) {
+		headElectionNeeded = true;
+		// A cluster election still finishing would make its members discard the new ELECT messages
+		for (int i = 0; i < nodes.size(); i++) {
+			nodes.get(i).setParticipant(false);
+		}
+		Set<Integer> started = new HashSet<>();
+		for (int i = 0; i < initiators.size(); i++) {
+			int c = clustering.getCluster(initiators.get(i));
+			if (c != -1) {
+				clustering.electionStarted(c);
+				getNodeById(initiators.get(i)).triggerElection();
+				started.add(c);
+			}
+		}
+		for (int c : clustering.getClusterIds()) {
+			if (!started.contains(c)) {
+				startClusterElection(c);
+			}
+		}
+	}
+	
+	
+	// Links the cluster heads into a ring and starts the election among them
+	private static void startHeadElection() {
+		headElectionNeeded = false;
+		globalLeader = -1;
+		List<Integer> heads = clustering.getHeads();
+		if (heads.size() == 1) {
+			globalLeader = heads.get(0);
+			logLeader(globalLeader);
+			return;
+		}
+		// A head election interrupted by a failure is abandoned, its messages may have been lost
+		for (int i = 0; i < nodes.size(); i++) {
+			nodes.get(i).setHeadParticipant(false);
+		}
+		for (int i = 0; i < heads.size(); i++) {
+			getNodeById(heads.get(i)).setHeadNext(heads.get((i + 1) % heads.size()));
+		}
+		getNodeById(heads.get(0)).triggerHeadElection();
+	}
+	
+	
+	// Records the results reported by the node threads during the round, and moves on to the heads once all cluster heads are known
+	private static void processClusterLeaders() {
+		while (!leaders.isEmpty()) {
+			int leader = leaders.poll();
+			if (clustering != null) {
+				globalLeader = leader;
+			}
+			logLeader(leader);
+		}
+		if (clustering == null || clusterLeaders.isEmpty()) {
+			return;
+		}
+		while (!clusterLeaders.isEmpty()) {
+			int head = clusterLeaders.poll();
+			int c = clustering.getCluster(head);
+			// The head may have failed since
+			if (c != -1) {
+				System.out.println(String.format("Node(%d) is the head of cluster %d", head, c));
+				clustering.setHead(c, head);
+			}
+		}
+		if (clustering.allHeadsKnown()) {
+			if (headElectionNeeded) {
+				startHeadElection();
+			}
+			// The heads didn't change, the global leader stays the same unless the heads are still electing it
+			else if (globalLeader != -1) {
+				logLeader(globalLeader);
+			}
+		}
+	}
+	
+	
+	// Removes the link to a lost neighbour and informs the node about it
+	private static void notifyLinkLost(Node n, int lostId, String reason) {
+		n.removeNeighbour(lostId);
+		// Without a direct link the next node can only be reached by forwarding
+		if (n.getNext() == lostId) {
+			n.setNextIsDead(true);
+		}
+		// Messages already waiting for the lost neighbour would never be sent otherwise
+		n.rerouteMessagesTo(lostId);
+		System.out.println(String.format("Node(%d) has been notified of %s", n.getNodeId(), reason));
+	}
+	
+	
+	// Adds the link to a new neighbour and informs the node about it
+	private static void notifyLinkGained(Node n, int newId) {
+		n.addNeighbour(newId);
+		// The next node is in range again, no need to forward to it
+		if (n.getNext() == newId) {
+			n.setNextIsDead(false);
+		}
+		System.out.println(String.format("Node(%d) has been notified of new neighbour Node(%d)", n.getNodeId(), newId));
+	}
+	
+	
+	// Moves a node to a new position and updates the links that appeared or disappeared
+	public static synchronized void processNodeMove(int id, double x, double y) {
+		Node movedNode = getNodeById(id);
+		// Moves of failed nodes are ignored
+		if (movedNode == null || grid == null) {
+			return;
+		}
+		System.out.println(String.format("Node(%d) moves to (%.2f, %.2f)", id, x, y));
+		// Only a node that crossed a cell boundary has to be rebucketed in the index
+		grid.move(id, x, y);
+		
+		List<Integer> oldNeighbours = new ArrayList<>(movedNode.getNeighbours());
+		List<Integer> newNeighbours = grid.neighboursInRange(id, radioRange);
+		// Links that went out of range
+		for (int i = 0; i < oldNeighbours.size(); i++) {
+			int other = oldNeighbours.get(i);
+			if (!newNeighbours.contains(other)) {
+				notifyLinkLost(movedNode, other, "lost link to Node(" + other + ")");
+				notifyLinkLost(getNodeById(other), id, "lost link to Node(" + id + ")");
+			}
+		}
+		// Links that came into range
+		for (int i = 0; i < newNeighbours.size(); i++) {
+			int other = newNeighbours.get(i);
+			if (!oldNeighbours.contains(other)) {
+				notifyLinkGained(movedNode, other);
+				notifyLinkGained(getNodeById(other), id);
+			}
+		}
+		// A node that moved out of range of everyone else disconnects the graph like a failure
+		if (!graphIsConnected()) {
+			stopSimulation("Graph has become disconnected");
+		}
+	}
+	
+	
+	// Ends the simulation early, the node threads are stopped so that the program can exit
+	private static void stopSimulation(String reason) {
+		// A later event of the same round may find the simulation already stopped
+		if (executorService.isShutdown()) {
+			return;
+		}
+		executorService.shutdown();
+		System.out.println("\n\n" + reason);
+		for (int i = 0; i < nodes.size(); i++) {
+			nodes.get(i).stopExecution();
+		}
+		logger();
+	}
+	
+	
 	// Checks if the nodes in node list forms a connected graph
 	private static boolean graphIsConnected() {
 		if (nodes.size() == 0) {
 			return false;
 		}
 		
-		List<Integer> visited = new ArrayList<>();
+		Set<Integer> visited = new HashSet<>();
 		Stack<Node> s = new Stack<>();
 		s.push(nodes.get(0));
 		while (!s.isEmpty() && visited.size() < nodes.size()) {
@@ -394,10 +1056,17 @@ public class Network {
 	        List<Integer> nodesToTrigger = (List<Integer>) pair.getValue();
 	        // If the current round matches the round the event should be triggered in
 	        if (round == roundNum) {
+	        	startElectionStats();
+	        	// In the hierarchical election every cluster elects its head
+	        	if (clustering != null) {
+	        		startHierarchicalElection(nodesToTrigger);
+	        	}
 	        	// Trigger all the necessary nodes
-	        	for (int i = 0; i < nodesToTrigger.size(); i++) {
-	        		Node n = getNodeById(nodesToTrigger.get(i));
-	        		n.triggerElection();
+	        	else {
+		        	for (int i = 0; i < nodesToTrigger.size(); i++) {
+		        		Node n = getNodeById(nodesToTrigger.get(i));
+		        		n.triggerElection();
+		        	}
 	        	}
 	        	// Remove event from the list
 	        	it.remove();
@@ -421,14 +1090,24 @@ public class Network {
 	        	it2.remove();
 	        }
 	    }
+	    
+	    // Trigger MOVES
+	    List<double[]> movesThisRound = moves.remove(round);
+	    if (movesThisRound != null) {
+	    	for (int i = 0; i < movesThisRound.size(); i++) {
+	    		double[] move = movesThisRound.get(i);
+	    		processNodeMove((int) move[0], move[1], move[2]);
+	    	}
+	    }
 	}
 	
 
-	// Returns the number of nodes currently running
+	// Returns the number of nodes whose thread is still alive
 	private static int numOfActiveNodes() {
 		int activeNodes = 0;
 		for (int i = 0 ; i < nodes.size(); i++) {
-			if (nodes.get(i).isRunning()) {
+			// A node waiting for the end of its election is no longer running, but its thread is still alive
+			if (nodes.get(i).isAlive()) {
 				activeNodes++;
 			}
 		}
@@ -437,21 +1116,43 @@ public class Network {
 	}
 	
 	
+	// Returns true if a node still has messages waiting to be sent
+	private static boolean hasOutgoingMessages() {
+		for (int i = 0 ; i < nodes.size(); i++) {
+			if (!nodes.get(i).getOutgoingMessages().isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	
 	// Periodically collects and delivers messages, and triggers events
     private static void run() {
     	// If there are no active nodes and no further events
-    	if (elections.size() == 0 && fails.size() == 0 && numOfActiveNodes() == 0) {
+    	if (elections.size() == 0 && fails.size() == 0 && moves.size() == 0 && numOfActiveNodes() == 0
+    			&& clusterLeaders.isEmpty() && leaders.isEmpty() && !hasOutgoingMessages()
+    			&& (linkLayer == null || linkLayer.isIdle())) {
     		// End the execution
     		executorService.shutdown();
     		System.out.println("\n\nProgram has finished executing");
     		logger();
     	}
     	else {
+            SimulationEvents.Round event = new SimulationEvents.Round();
+            event.begin();
             System.out.println("\nRound " + round);
             System.out.println("-------");
             collectMessages();
             deliverMessages();
+            processClusterLeaders();
             triggerEvents();
+            event.end();
+            if (event.shouldCommit()) {
+            	event.round = round;
+            	event.activeNodes = numOfActiveNodes();
+            	event.commit();
+            }
             round++;
     	}
     }
@@ -460,21 +1161,67 @@ public class Network {
 	public static void main(String args[]) throws IOException, InterruptedException {
 		
 		Network n = new Network();
-		// Process first input file
-		try {
-			n.processGraphFile(args[0], n);
+		// Optional third argument is a precompiled topology file, use it if it is up to date
+		boolean loaded = false;
+		if (args.length > 2) {
+			try {
+				loaded = n.loadTopologyFile(args[2], args[0], args[1], n);
+			}
+			catch (Exception e) {
+				System.out.println("Invalid topology file, recompiling");
+				nodes.clear();
+				nodeIndex.clear();
+				elections.clear();
+				fails.clear();
+				moves.clear();
+				linkLayer = null;
+				clusterSize = 0;
+				grid = null;
+				radioRange = 0;
+			}
 		}
-		catch (Exception e) {
-			System.out.println("Invalid graph input file");
+		
+		if (loaded) {
+			System.out.println("Loaded precompiled topology file");
+		}
+		else {
+			// Process first input file
+			boolean parsed = true;
+			try {
+				n.processGraphFile(args[0], n);
+			}
+			catch (Exception e) {
+				System.out.println("Invalid graph input file");
+				parsed = false;
+			}
+			
+			
+			// Process the second input file
+			try {
+				processEventsFile(args[1]);
+			}
+			catch (Exception e) {
+				System.out.println("Invalid events input file");
+				parsed = false;
+			}
+			
+			
+			// Compile the topology file for the next runs, a failed parse must not be cached
+			if (args.length > 2 && parsed) {
+				try {
+					writeTopologyFile(args[2], args[0], args[1]);
+					System.out.println("Compiled topology file " + args[2]);
+				}
+				catch (Exception e) {
+					System.out.println("Could not write topology file");
+				}
+			}
 		}
 		
 		
-		// Process the second input file
-		try {
-			processEventsFile(args[1]);
-		}
-		catch (Exception e) {
-			System.out.println("Invalid events input file");
+		// Set up the clusters of the hierarchical election
+		if (clusterSize > 0) {
+			setUpClusters();
 		}
 		
 		
@@ -15,8 +15,15 @@ public class Node extends Thread {
     private boolean locked = false;
     // Flags if the node's original next neighbour has failed 
     private boolean nextIsDead = false;
+    // Next cluster head on the ring of the hierarchical election
+    private int headNext = -1;
+    private boolean headParticipant = false;
     private Network network;
     public boolean hasBeenStarted = false;
+    // Set under the node's lock once the thread has decided to stop, later messages need a new thread
+    private boolean finished = false;
+    // Set once the node has failed or the simulation has ended, the node ignores every message after that
+    private boolean stopped = false;
     
     // IDs of the neighbouring nodes
     private List<Integer> neighbours;
@@ -95,6 +102,13 @@ public class Node extends Thread {
         this.next = next;
     }
     
+    public int getHeadNext() {
+        return headNext;
+    }
+    public void setHeadNext(int headNext) {
+        this.headNext = headNext;
+    }
+    
     public int getPrev() {
         return prev;
     }
@@ -102,6 +116,20 @@ public class Node extends Thread {
         this.prev = prev;
     }
     
+    public boolean isParticipant() {
+        return participant;
+    }
+    public void setParticipant(boolean participant) {
+        this.participant = participant;
+    }
+    
+    public boolean isHeadParticipant() {
+        return headParticipant;
+    }
+    public void setHeadParticipant(boolean headParticipant) {
+        this.headParticipant = headParticipant;
+    }
+    
     public boolean isRunning() {
         return running;
     }
@@ -110,22 +138,41 @@ public class Node extends Thread {
         return outgoingMsg;
     }
     
+    public List<String> getIncomingMessages() {
+        return incomingMsg;
+    }
+    
     public void removeOutgoingMessage(Message m) {
         outgoingMsg.remove(m);
     }
     
-    public void stopExecution() {
+    public synchronized void stopExecution() {
+        stopped = true;
         running = false;
         participant = false;
+        headParticipant = false;
+        incomingMsg.clear();
+        notifyAll();
     }
     
     
             
-    public void receiveMsg(String m) {
+    // Returns false if the thread has already stopped and the message has to go to a restarted node
+    public synchronized boolean receiveMsg(String m) {
+        // A stopped node drops the message
+        if (stopped) {
+            return true;
+        }
+        if (finished) {
+            return false;
+        }
         // Lock node to prevent concurrent access to incoming messages
         lock();
         incomingMsg.add(m);
         unlock();
+        // Wake up the node's thread
+        notifyAll();
+        return true;
     }
         
     
@@ -149,6 +196,36 @@ public class Node extends Thread {
     }
     
     
+    // Messages still waiting for a neighbour that is no longer in range have to be forwarded instead
+    public synchronized void rerouteMessagesTo(int lostId) {
+        lock();
+        for (int i = 0; i < outgoingMsg.size(); i++) {
+            Message m = outgoingMsg.get(i);
+            if (m.getRecipient() == lostId && !m.isForward()) {
+                outgoingMsg.set(i, new Message(id, lostId, "FORWARDTO " + lostId + " " + m.getMessage(), true));
+            }
+        }
+        unlock();
+    }
+    
+    
+    // Sends a message to the next cluster head, which is usually not a neighbour
+    private void sendToHead(String m) {
+        // Lock node to prevent concurrent access to outgoing messages
+        lock();
+        if (neighbours.contains(headNext)) {
+            outgoingMsg.add(new Message(id, headNext, m, false));
+            System.out.println(String.format("Node(%d) sends message (%s) to Node(%d)", id, m, headNext));
+        }
+        else {
+            String msg = "FORWARDTO " + headNext + " " + m;
+            outgoingMsg.add(new Message(id, headNext, msg, true));
+            System.out.println(String.format("Node(%d) sends message (%s)", id, msg));
+        }
+        unlock();
+    }
+    
+    
     // Given a FORWARDTO message, parses it correctly and adds it to the outgoing pile
     public void sendForwardedMessage(String msg) {
         String temp[] = msg.split(" ");
@@ -167,10 +244,21 @@ public class Node extends Thread {
     }
     
     
+    // Triggers the node to start a leader election among the cluster heads
+    public void triggerHeadElection() {
+        System.out.println(String.format("Node(%d) starting HEAD ELECTION",  id));
+        headParticipant = true;
+        running = true;
+        sendToHead("HELECT " + id);
+    }
+    
+    
     // Processes the incoming message
     private void processMsg(String msg) {
         String temp[] = msg.split(" ");
         String msgType = temp[0];
+        SimulationEvents.ProcessMessage event = new SimulationEvents.ProcessMessage();
+        event.begin();
         
         System.out.println(String.format("Node(%d) recieved message(%s)", id, msg));
         
@@ -214,11 +302,57 @@ public class Node extends Thread {
                 running = false;
                 break;
                 
+            // Same as ELECT and LEADER, but on the ring of the cluster heads
+            case "HELECT":
+                msgID = Integer.parseInt(temp[1]);
+                if (msgID > id) {
+                    headParticipant = true;
+                    sendToHead(msg);
+                }
+                else if (msgID < id) {
+                    if (!headParticipant) {
+                        headParticipant = true;
+                        sendToHead("HELECT " + id);
+                    }
+                    else {
+                        System.out.println(String.format("Node(%d) discards message (%s)", id, msg));
+                    }
+                }
+                else {
+                    leader = true;
+                    network.logHeadElection(id);
+                    System.out.println(String.format("Node(%d) marks itself as GLOBAL LEADER", id));
+                    sendToHead("HLEADER " + id);
+                    headParticipant = false;
+                    running = false;
+                }
+                break;
+                
+            case "HLEADER":
+                msgID = Integer.parseInt(temp[1]);
+                System.out.println(String.format("Node(%d) set Node(%d) as global leader", id, msgID));
+                currentLeader = msgID;
+                if (headNext != msgID) {
+                    sendToHead(msg);
+                }
+                headParticipant = false;
+                running = false;
+                break;
+                
             case "FORWARDTO":
                 // Just put the message in the outgoing messages
                 sendForwardedMessage(msg);
                 break;    
             }
+        
+        event.end();
+        if (event.shouldCommit()) {
+            event.round = Network.getRound();
+            event.nodeId = id;
+            event.messageType = msgType;
+            event.electionId = msgType.equals("FORWARDTO") ? -1 : Integer.parseInt(temp[1]);
+            event.commit();
+        }
     }
     
 
@@ -227,9 +361,19 @@ public class Node extends Thread {
         System.out.println(String.format("Node(%d) started running", id));
         running = true;
         hasBeenStarted = true;
-        while (running || participant) {
+        while (true) {
             // Need to sync the incoming and outgoing messages between the Node and Network threads
             synchronized (this) {
+                // Sleep until a message arrives instead of spinning, at most for a round
+                if (incomingMsg.isEmpty()) {
+                    try {
+                        wait(20);
+                    }
+                    catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+                boolean processed = !incomingMsg.isEmpty();
                 // Process the incoming messages
                 Iterator iter = incomingMsg.iterator();
                 while (iter.hasNext()) {
@@ -239,6 +383,15 @@ public class Node extends Thread {
                     iter.remove();
                     locked = false;
                 }  
+                // A node that only relayed messages and isn't taking part in an election has nothing left to do
+                if (processed && !participant && !headParticipant) {
+                    running = false;
+                }
+                // Decide to stop while holding the lock, so a message can't arrive unnoticed in between
+                if (stopped || (!running && !participant && !headParticipant && incomingMsg.isEmpty())) {
+                    finished = true;
+                    break;
+                }
             }
         }
         running = false;
@@ -0,0 +1,144 @@
+import jdk.jfr.*;
+
+/*
+Java Flight Recorder events emitted by the simulator.
+
+- The events are only committed while a recording has them enabled, otherwise creating
+  and committing them is optimised away by the JIT
+- Events that would be emitted once per message are guarded with isEnabled() so no
+  extra work (e.g. parsing the message type) is done when recording is off
+- simulator.jfc enables all of them together with the usual JVM events
+*/
+
+public class SimulationEvents {
+
+	// One synchronous round of the network thread (Network.run)
+	@Name("simulator.Round")
+	@Label("Round")
+	@Category("Wireless Network Simulation")
+	@StackTrace(false)
+	public static class Round extends Event {
+		@Label("Round")
+		public int round;
+		@Label("Active Nodes")
+		public int activeNodes;
+	}
+
+
+	// Moving the outgoing messages of the nodes to the network buffer (Network.collectMessages)
+	@Name("simulator.CollectMessages")
+	@Label("Collect Messages")
+	@Category("Wireless Network Simulation")
+	@StackTrace(false)
+	public static class CollectMessages extends Event {
+		@Label("Round")
+		public int round;
+		@Label("Messages Collected")
+		public int collected;
+		@Label("Messages Held Back")
+		@Description("Messages left in the outgoing lists because of the one message per neighbour per round limit")
+		public int heldBack;
+	}
+
+
+	// Delivering one message to a node (Network.deliverMessages)
+	@Name("simulator.Delivery")
+	@Label("Message Delivery")
+	@Category("Wireless Network Simulation")
+	@StackTrace(false)
+	public static class Delivery extends Event {
+		@Label("Round")
+		public int round;
+		@Label("Sender")
+		public int sender;
+		@Label("Recipient")
+		@Description("Final destination of the message")
+		public int recipient;
+		@Label("Delivered To")
+		@Description("Node receiving the message in this round, differs from the recipient for forwarded messages")
+		public int deliveredTo;
+		@Label("Message Type")
+		public String messageType;
+		@Label("Forwarded")
+		public boolean forwarded;
+	}
+
+
+	// One slot sent over a link of the link layer (Link.transmit)
+	@Name("simulator.LinkTransmit")
+	@Label("Link Transmit")
+	@Category("Wireless Network Simulation")
+	@StackTrace(false)
+	public static class LinkTransmit extends Event {
+		@Label("Round")
+		public int round;
+		@Label("From")
+		public int from;
+		@Label("To")
+		public int to;
+		@Label("Batch Size")
+		public int batch;
+		@Label("Queue Length")
+		@Description("Messages still waiting on the link after the slot")
+		public int queueLength;
+		@Label("Lost")
+		public boolean lost;
+	}
+
+
+	// Route lookup for a FORWARDTO message (Network.getNextNodeOnPath)
+	@Name("simulator.Forward")
+	@Label("Forward Route Lookup")
+	@Category("Wireless Network Simulation")
+	@StackTrace(false)
+	public static class Forward extends Event {
+		@Label("Round")
+		public int round;
+		@Label("From")
+		public int from;
+		@Label("To")
+		public int to;
+		@Label("Next Hop")
+		@Description("-1 if the destination is unreachable")
+		public int nextHop;
+		@Label("Remaining Hops")
+		@Description("Length of the shortest path from the sender to the destination")
+		public int hops;
+		@Label("Nodes Visited")
+		public int visited;
+	}
+
+
+	// Handling a failed node (Network.processNodeFailure)
+	@Name("simulator.NodeFailure")
+	@Label("Node Failure")
+	@Category("Wireless Network Simulation")
+	public static class NodeFailure extends Event {
+		@Label("Round")
+		public int round;
+		@Label("Node")
+		public int nodeId;
+		@Label("Neighbours Notified")
+		public int neighboursNotified;
+		@Label("Graph Connected")
+		public boolean connected;
+	}
+
+
+	// Processing one incoming message on a node's thread (Node.processMsg)
+	@Name("simulator.ProcessMessage")
+	@Label("Process Message")
+	@Category("Wireless Network Simulation")
+	@StackTrace(false)
+	public static class ProcessMessage extends Event {
+		@Label("Round")
+		public int round;
+		@Label("Node")
+		public int nodeId;
+		@Label("Message Type")
+		public String messageType;
+		@Label("Election ID")
+		@Description("ID carried by ELECT and LEADER messages, -1 otherwise")
+		public int electionId;
+	}
+}
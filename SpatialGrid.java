@@ -0,0 +1,113 @@
+import java.util.*;
+
+/*
+Uniform grid spatial index used when the nodes are described by coordinates.
+
+- The side of each cell equals the radio range, so every node in range of a
+  given node is in the same cell or one of the 8 cells around it
+- Neighbour queries only look at those 9 cells instead of every other node
+*/
+
+public class SpatialGrid {
+
+	private double cellSize;
+	// Key is the packed cell coordinate, list contains the nodeIDs inside the cell
+	private Map<Long, List<Integer>> cells = new HashMap<>();
+	// Key is the nodeID, value contains its x and y coordinates
+	private Map<Integer, double[]> positions = new HashMap<>();
+
+
+	public SpatialGrid(double cellSize) {
+		this.cellSize = cellSize;
+	}
+
+
+	// Returns the cell coordinate for a position on one axis
+	private int cellOf(double v) {
+		return (int) Math.floor(v / cellSize);
+	}
+
+
+	// Packs the 2 cell coordinates into a single key
+	private static long key(int cx, int cy) {
+		return (((long) cx) << 32) | (cy & 0xffffffffL);
+	}
+
+
+	public double[] getPosition(int id) {
+		return positions.get(id);
+	}
+
+
+	// Adds a node to the index at the given position
+	public void insert(int id, double x, double y) {
+		positions.put(id, new double[] {x, y});
+		cells.computeIfAbsent(key(cellOf(x), cellOf(y)), k -> new ArrayList<>()).add(id);
+	}
+
+
+	// Removes a node from the index
+	public void remove(int id) {
+		double[] p = positions.remove(id);
+		if (p != null) {
+			removeFromCell(id, key(cellOf(p[0]), cellOf(p[1])));
+		}
+	}
+
+
+	private void removeFromCell(int id, long k) {
+		List<Integer> cell = cells.get(k);
+		cell.remove(Integer.valueOf(id));
+		if (cell.isEmpty()) {
+			cells.remove(k);
+		}
+	}
+
+
+	// Moves a node to a new position
+	public void move(int id, double x, double y) {
+		double[] p = positions.get(id);
+		long oldKey = key(cellOf(p[0]), cellOf(p[1]));
+		long newKey = key(cellOf(x), cellOf(y));
+		p[0] = x;
+		p[1] = y;
+		// Only the nodes that changed cell have to be moved between the buckets
+		if (oldKey == newKey) {
+			return;
+		}
+		removeFromCell(id, oldKey);
+		cells.computeIfAbsent(newKey, k -> new ArrayList<>()).add(id);
+	}
+
+
+	// Returns the IDs of the nodes within range of the given node
+	public List<Integer> neighboursInRange(int id, double range) {
+		List<Integer> result = new ArrayList<>();
+		double[] p = positions.get(id);
+		int cx = cellOf(p[0]);
+		int cy = cellOf(p[1]);
+		double rangeSq = range * range;
+		// Check the node's own cell and the 8 cells around it
+		for (int dx = -1; dx <= 1; dx++) {
+			for (int dy = -1; dy <= 1; dy++) {
+				List<Integer> cell = cells.get(key(cx + dx, cy + dy));
+				if (cell == null) {
+					continue;
+				}
+				for (int i = 0; i < cell.size(); i++) {
+					int other = cell.get(i);
+					if (other == id) {
+						continue;
+					}
+					double[] q = positions.get(other);
+					double ddx = p[0] - q[0];
+					double ddy = p[1] - q[1];
+					if (ddx * ddx + ddy * ddy <= rangeSq) {
+						result.add(other);
+					}
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,161 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/*
+Precompiled binary form of the graph and events input files.
+
+- The file starts with a magic number, the format version and a stamp (size, CRC32)
+  of both source text files
+- A cache is stale if a source file has a different size or checksum; the checksum is
+  always recomputed, as copies and archives restore the modification time of edited files
+- The rest of the file is read through memory mapped windows, so no text parsing is needed
+  at startup and files larger than 2GB can still be mapped
+- What the body contains is decided by Network, which writes and reads it in the same order
+*/
+
+public class TopologyFile implements Closeable {
+
+	// "WNST"
+	private static final int MAGIC = 0x574e5354;
+	// Must be increased whenever the layout written by Network changes
+	private static final int VERSION = 4;
+	// Size of the memory mapped windows
+	private static final long WINDOW = 1L << 30;
+
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	// File offset of the current window
+	private long windowStart = 0;
+
+
+	private TopologyFile(FileChannel channel) throws IOException {
+		this.channel = channel;
+		mapWindow(0);
+	}
+
+
+	// Creates a topology file and writes its header, the caller writes the body
+	public static DataOutputStream create(String fileName, String graphFile, String eventsFile) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeStamp(out, new File(graphFile));
+			writeStamp(out, new File(eventsFile));
+		}
+		catch (IOException e) {
+			out.close();
+			throw e;
+		}
+		return out;
+	}
+
+
+	// Opens a topology file for reading, returns null if it is missing, of another version or stale
+	public static TopologyFile open(String fileName, String graphFile, String eventsFile) throws IOException {
+		File f = new File(fileName);
+		if (!f.isFile()) {
+			return null;
+		}
+		FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		try {
+			TopologyFile topology = new TopologyFile(channel);
+			if (topology.readInt() != MAGIC || topology.readInt() != VERSION
+					|| !topology.checkStamp(new File(graphFile)) || !topology.checkStamp(new File(eventsFile))) {
+				topology.close();
+				return null;
+			}
+			return topology;
+		}
+		catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+
+	private static void writeStamp(DataOutputStream out, File source) throws IOException {
+		out.writeLong(source.length());
+		out.writeLong(checksum(source));
+	}
+
+
+	// Checks if a source file still matches the stamp it had when the topology file was written
+	private boolean checkStamp(File source) throws IOException {
+		long size = readLong();
+		long crc = readLong();
+		// Only the compiled file is available, nothing to compare with
+		if (!source.isFile()) {
+			return true;
+		}
+		// A different size is enough, otherwise only the content decides
+		return source.length() == size && checksum(source) == crc;
+	}
+
+
+	// Calculates the CRC32 of a file
+	private static long checksum(File f) throws IOException {
+		CRC32 crc = new CRC32();
+		try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+			while (ch.read(buf) > 0) {
+				buf.flip();
+				crc.update(buf);
+				buf.clear();
+			}
+		}
+		return crc.getValue();
+	}
+
+
+	// Maps the window starting at the given file offset
+	private void mapWindow(long start) throws IOException {
+		windowStart = start;
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW, channel.size() - start));
+	}
+
+
+	// Moves the window forward if the next value would not fit in the current one
+	private void ensure(int bytes) throws IOException {
+		if (buffer.remaining() < bytes) {
+			mapWindow(windowStart + buffer.position());
+			if (buffer.remaining() < bytes) {
+				throw new EOFException("Truncated topology file");
+			}
+		}
+	}
+
+
+	public int readInt() throws IOException {
+		ensure(4);
+		return buffer.getInt();
+	}
+
+
+	public long readLong() throws IOException {
+		ensure(8);
+		return buffer.getLong();
+	}
+
+
+	public double readDouble() throws IOException {
+		ensure(8);
+		return buffer.getDouble();
+	}
+
+
+	public byte readByte() throws IOException {
+		ensure(1);
+		return buffer.get();
+	}
+
+
+	public void close() throws IOException {
+		buffer = null;
+		channel.close();
+	}
+}